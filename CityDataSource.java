@@ -0,0 +1,18 @@
+/*
+ * File: CityDataSource.java
+ * Read-only source of weather data that server serves lookups from
+ *
+ */
+import java.io.IOException;
+
+public interface CityDataSource {
+
+	// Get number of cities
+	public int size();
+
+	// Get name of city in data file order, throws if source is corrupt
+	public String getName(int i) throws IOException;
+
+	// Look for city by name, null if not found, throws if source is corrupt
+	public CityWeatherData find(String city) throws IOException;
+}
@@ -0,0 +1,115 @@
+/*
+ * File: CityListModel.java
+ * List model of cities shown in client, updated by differences only, or
+ * replaced at once when differences are scattered over too many runs
+ *
+ */
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.AbstractListModel;
+
+public class CityListModel extends AbstractListModel<String> {
+	private static final long serialVersionUID = 1L;
+	private static final int MAX_RUNS = 8; // Changed runs above which whole list is replaced
+
+	private List<String> cities = new ArrayList<String>(); // Cities currently shown
+
+	@Override
+	public int getSize() {
+		return cities.size();
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		return cities.get(index);
+	}
+
+	// Get position of city in shown list, -1 if not shown
+	public int indexOf(String city) {
+		return cities.indexOf(city);
+	}
+
+	// Replace shown cities, firing events only for removed and added runs (call on EDT)
+	public void setCities(List<String> newCities) {
+		Set<String> oldSet = new HashSet<String>(cities);
+		Set<String> newSet = new HashSet<String>(newCities);
+
+		// Every run shifts the list and its selection, so many runs cost more than one replace
+		if (countRuns(newCities, oldSet, newSet) > MAX_RUNS) {
+			replaceFrom(0, newCities);
+			return;
+		}
+
+		int i = 0; // Position in both shown list and new list
+
+		while (i < newCities.size()) {
+			if (i < cities.size() && cities.get(i).equals(newCities.get(i))) {
+				// Same city in same place
+				i++;
+			} else if (i < cities.size() && !newSet.contains(cities.get(i))) {
+				// Remove run of cities missing from new list
+				int end = i;
+				while (end < cities.size() && !newSet.contains(cities.get(end)))
+					end++;
+				cities.subList(i, end).clear();
+				fireIntervalRemoved(this, i, end - 1);
+			} else if (!oldSet.contains(newCities.get(i))) {
+				// Insert run of cities missing from shown list
+				int end = i;
+				while (end < newCities.size() && !oldSet.contains(newCities.get(end)))
+					end++;
+				cities.addAll(i, newCities.subList(i, end));
+				fireIntervalAdded(this, i, end - 1);
+				i = end;
+			} else {
+				// Order has changed, replace rest of list
+				replaceFrom(i, newCities);
+				return;
+			}
+		}
+
+		// Remove cities left after end of new list
+		replaceFrom(i, newCities);
+	}
+
+	// Count runs that updating shown list to new list fires events for, without changing it
+	private int countRuns(List<String> newCities, Set<String> oldSet, Set<String> newSet) {
+		int runs = 0;
+		int i = 0; // Position in shown list
+		int j = 0; // Position in new list
+
+		while (j < newCities.size()) {
+			if (i < cities.size() && cities.get(i).equals(newCities.get(j))) {
+				i++;
+				j++;
+			} else if (i < cities.size() && !newSet.contains(cities.get(i))) {
+				while (i < cities.size() && !newSet.contains(cities.get(i)))
+					i++;
+				runs++;
+			} else if (!oldSet.contains(newCities.get(j))) {
+				while (j < newCities.size() && !oldSet.contains(newCities.get(j)))
+					j++;
+				runs++;
+			} else {
+				return runs + 1; // Rest of list is replaced
+			}
+		}
+		return i < cities.size() ? runs + 1 : runs;
+	}
+
+	// Replace shown cities from index to end with new list cities
+	private void replaceFrom(int index, List<String> newCities) {
+		int oldSize = cities.size();
+		if (oldSize > index) {
+			cities.subList(index, oldSize).clear();
+			fireIntervalRemoved(this, index, oldSize - 1);
+		}
+		if (newCities.size() > index) {
+			cities.addAll(newCities.subList(index, newCities.size()));
+			fireIntervalAdded(this, index, newCities.size() - 1);
+		}
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * File: DataSnapshot.java
+ * Compact indexed binary image of weather data, memory-mapped for lookups
+ *
+ * Layout: header (magic, version, count, file length, data file modification
+ * time and length), order table (record offsets in data file order), name
+ * index (record offsets sorted by city name bytes), records (4 length-prefixed
+ * UTF-8 strings: name, today, tomorrow, in2days).
+ *
+ * Every snapshot is written under a new generation name (data.snap.N), so a
+ * snapshot still mapped by the server is never replaced in place.
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class DataSnapshot implements CityDataSource {
+	private static final int MAGIC = 0x57534E50; // "WSNP"
+	private static final int VERSION = 2; // Snapshot format version
+	private static final int HEADER_SIZE = 36; // Magic, version, count, file length and data file stamp
+	private static Charset charset = StandardCharsets.UTF_8; // Strings encoding
+
+	private ByteBuffer buffer; // Mapped snapshot file
+	private int count; // Number of cities in snapshot
+	private int recordsStart; // Offset of first record, after tables
+	private long sourceModified; // Modification time of data file snapshot was written from
+	private long sourceLength; // Length of data file snapshot was written from
+
+	private DataSnapshot(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+
+		// Validate header only, records are checked when read
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Snapshot header is not valid.");
+		count = buffer.getInt(8);
+		if (buffer.getLong(12) != buffer.limit())
+			throw new IOException("Snapshot file is truncated.");
+		if (count < 0 || HEADER_SIZE + 8L * count > buffer.limit())
+			throw new IOException("Snapshot index is not valid.");
+		recordsStart = HEADER_SIZE + 8 * count;
+		sourceModified = buffer.getLong(20);
+		sourceLength = buffer.getLong(28);
+	}
+
+	// Map snapshot file into memory
+	public static DataSnapshot open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			// Mapping stays valid after channel is closed
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new DataSnapshot(mapped);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Write data to snapshot file, stamped with modification time and length of data file it was read from
+	public static void write(List<CityWeatherData> data, File file, long sourceModified, long sourceLength)
+			throws IOException {
+		int count = data.size();
+		byte[][] records = new byte[count][];
+		int[] offsets = new int[count];
+		long offset = HEADER_SIZE + 8L * count;
+
+		// Encode records and compute their offsets
+		for (int i = 0; i < count; i++) {
+			CityWeatherData city = data.get(i);
+			records[i] = encode(city.getName(), city.getToday(), city.getTomorrow(), city.getIn2days());
+			if (offset > Integer.MAX_VALUE)
+				throw new IOException("Too much data for snapshot file.");
+			offsets[i] = (int) offset;
+			offset += records[i].length;
+		}
+		if (offset > Integer.MAX_VALUE)
+			throw new IOException("Too much data for snapshot file.");
+
+		// Build name index (stable sort keeps first city of duplicate names first)
+		List<Integer> index = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++)
+			index.add(i);
+		Collections.sort(index, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				return compareNames(records[a], records[b]);
+			}
+		});
+
+		// Write to temporary file and move it to its name only when complete
+		File tmpFile = new File(file.getPath() + ".tmp");
+		boolean moved = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(count);
+				out.writeLong(offset); // File length
+				out.writeLong(sourceModified);
+				out.writeLong(sourceLength);
+				for (int i = 0; i < count; i++)
+					out.writeInt(offsets[i]);
+				for (int i : index)
+					out.writeInt(offsets[i]);
+				for (byte[] record : records)
+					out.write(record);
+			} finally {
+				out.close();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			// Temporary file is not a generation, so nothing else would ever delete it
+			if (!moved)
+				tmpFile.delete();
+		}
+	}
+
+	// Get latest snapshot generation of base file (base.N with highest N), null if none
+	public static File latest(File base) {
+		long latest = latestGeneration(base);
+		return latest < 0 ? null : generationFile(base, latest);
+	}
+
+	// Get file for snapshot generation following latest one
+	public static File next(File base) {
+		return generationFile(base, latestGeneration(base) + 1);
+	}
+
+	// Delete all snapshot generations but given one, files still in use are left for next time
+	public static void deleteOthers(File base, File keep) {
+		File[] files = directoryOf(base).listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (!file.getName().equals(keep.getName()) && generationOf(base, file) >= 0)
+				file.delete();
+		}
+	}
+
+	// Encode strings as length-prefixed UTF-8
+	static byte[] encode(String... fields) throws IOException {
+		int length = 0;
+		byte[][] encoded = new byte[fields.length][];
+		for (int i = 0; i < fields.length; i++) {
+			encoded[i] = fields[i].getBytes(charset);
+			if (encoded[i].length > 0xFFFF)
+				throw new IOException("Weather data string is too long for snapshot file.");
+			length += 2 + encoded[i].length;
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(length);
+		for (byte[] field : encoded) {
+			record.putShort((short) field.length);
+			record.put(field);
+		}
+		return record.array();
+	}
+
+	// Compare names of two encoded records byte by byte
+	private static int compareNames(byte[] a, byte[] b) {
+		ByteBuffer nameA = ByteBuffer.wrap(a);
+		ByteBuffer nameB = ByteBuffer.wrap(b);
+		int lengthA = nameA.getShort(0) & 0xFFFF;
+		int lengthB = nameB.getShort(0) & 0xFFFF;
+		for (int i = 0; i < lengthA && i < lengthB; i++) {
+			int diff = (a[2 + i] & 0xFF) - (b[2 + i] & 0xFF);
+			if (diff != 0)
+				return diff;
+		}
+		return lengthA - lengthB;
+	}
+
+	// Get highest generation number of base file, -1 if none
+	private static long latestGeneration(File base) {
+		long latest = -1;
+		File[] files = directoryOf(base).listFiles();
+		if (files != null) {
+			for (File file : files)
+				latest = Math.max(latest, generationOf(base, file));
+		}
+		return latest;
+	}
+
+	// Get generation number of file, -1 if it is not a generation of base file
+	private static long generationOf(File base, File file) {
+		String prefix = base.getName() + ".";
+		if (!file.getName().startsWith(prefix))
+			return -1;
+		try {
+			return Long.parseLong(file.getName().substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1; // Temporary or unrelated file
+		}
+	}
+
+	// Get file of generation number of base file
+	private static File generationFile(File base, long generation) {
+		return new File(directoryOf(base), base.getName() + "." + generation);
+	}
+
+	// Get directory holding base file
+	private static File directoryOf(File base) {
+		File directory = base.getAbsoluteFile().getParentFile();
+		return directory != null ? directory : new File(".");
+	}
+
+	// Check if snapshot was written from data file as it is now (always true if data file is missing)
+	public boolean isUpToDate(File dataFile) {
+		return !dataFile.exists() || (dataFile.lastModified() == sourceModified && dataFile.length() == sourceLength);
+	}
+
+	/**
+	 * @return the number of cities in snapshot
+	 */
+	@Override
+	public int size() {
+		return count;
+	}
+
+	// Get name of city in data file order
+	@Override
+	public String getName(int i) throws IOException {
+		return readString(recordOffset(i));
+	}
+
+	// Look for city by name in the name index, null if not found
+	@Override
+	public CityWeatherData find(String city) throws IOException {
+		byte[] name = city.getBytes(charset);
+
+		// Binary search for first record with name not less than requested
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareName(indexOffset(mid), name) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		if (low < count && compareName(indexOffset(low), name) == 0)
+			return readRecord(indexOffset(low));
+		return null;
+	}
+
+	// Offset of i-th record in data file order
+	private int recordOffset(int i) throws IOException {
+		if (i < 0 || i >= count)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+		return checkOffset(buffer.getInt(HEADER_SIZE + 4 * i));
+	}
+
+	// Offset of i-th record in name order
+	private int indexOffset(int i) throws IOException {
+		return checkOffset(buffer.getInt(HEADER_SIZE + 4 * (count + i)));
+	}
+
+	// Check record offset read from tables points into records area
+	private int checkOffset(int offset) throws IOException {
+		if (offset < recordsStart || offset > buffer.limit() - 2)
+			throw new IOException("Snapshot index is not valid.");
+		return offset;
+	}
+
+	// Compare name of record at offset with encoded name, without decoding it
+	private int compareName(int offset, byte[] name) throws IOException {
+		int length = stringLength(offset);
+		for (int i = 0; i < length && i < name.length; i++) {
+			int diff = (buffer.get(offset + 2 + i) & 0xFF) - (name[i] & 0xFF);
+			if (diff != 0)
+				return diff;
+		}
+		return length - name.length;
+	}
+
+	// Decode record at offset
+	private CityWeatherData readRecord(int offset) throws IOException {
+		String[] fields = new String[4];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = readString(offset);
+			offset += 2 + stringLength(offset);
+		}
+		return new CityWeatherData(fields[0], fields[1], fields[2], fields[3]);
+	}
+
+	// Decode length-prefixed string at offset
+	private String readString(int offset) throws IOException {
+		byte[] bytes = new byte[stringLength(offset)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + 2);
+		view.get(bytes);
+		return new String(bytes, charset);
+	}
+
+	// Get length of string at offset, checking it ends inside snapshot
+	private int stringLength(int offset) throws IOException {
+		if (offset < recordsStart || offset > buffer.limit() - 2)
+			throw new IOException("Snapshot record is not valid.");
+		int length = buffer.getShort(offset) & 0xFFFF;
+		if (offset + 2 + length > buffer.limit())
+			throw new IOException("Snapshot record is not valid.");
+		return length;
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * File: HistoryLog.java
+ * Append-only log of loaded weather data, kept in memory-mapped segment files
+ *
+ * Record: length, time, then 4 length-prefixed UTF-8 strings (name, today,
+ * tomorrow, in2days). Positions are segment * SEGMENT_SIZE + offset.
+ * The length slot after a record is cleared before the record's own length is
+ * written, so a record cut by a crash always reads as end of log. A record
+ * that does not check out on startup is treated as end of log and cut off.
+ *
+ * Records of every filled segment are indexed in a file next to it at the
+ * next checkpoint, so startup only scans segments without an index file.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class HistoryLog {
+	private static final int SEGMENT_SIZE = 4 * 1024 * 1024; // Bytes in segment file
+	private static final int RECORD_HEADER_SIZE = 12; // Record length and time
+	private static final int INDEX_MAGIC = 0x57534849; // "WSHI"
+	private static final int INDEX_VERSION = 2; // Segment index format version
+	private static Charset charset = StandardCharsets.UTF_8; // Strings encoding
+
+	private File directory; // Directory of segment files
+	private List<MappedByteBuffer> segments; // Mapped segments, last one is appended to
+	private int writeOffset; // Next record offset in last segment
+	private long lastTime; // Time of last appended records
+	private int indexedSegments; // Leading segments that have index files
+	private Map<String, PositionList> index; // Record positions per city, in time order
+	private ReadWriteLock lock = new ReentrantReadWriteLock(); // Appends exclude readers
+
+	// Constructor, maps existing segments and restores index from segment index files or records
+	public HistoryLog(File directory) throws IOException {
+		this.directory = directory;
+		segments = new ArrayList<MappedByteBuffer>();
+		index = new HashMap<String, PositionList>();
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create history directory.");
+
+		int segmentCount = 0;
+		while (segmentFile(segmentCount).exists())
+			segmentCount++;
+
+		// Map segments, restoring filled ones from their index files and scanning the rest
+		for (int i = 0; i < segmentCount; i++) {
+			MappedByteBuffer segment = mapSegment(i);
+			segments.add(segment);
+			if (i < segmentCount - 1 && readSegmentIndex(i)) {
+				if (indexedSegments == i)
+					indexedSegments++;
+				continue;
+			}
+
+			int offset = 0;
+			int length;
+			while ((length = recordLength(segment, offset)) > 0) {
+				lastTime = Math.max(lastTime, segment.getLong(offset + 4));
+				addPosition(readString(segment, offset + RECORD_HEADER_SIZE), (long) i * SEGMENT_SIZE + offset);
+				offset += length;
+			}
+			writeOffset = offset;
+
+			if (length < 0) {
+				// Bad record, cut log here
+				System.out.println("History segment " + i + " is not valid, truncating it.");
+				segment.putInt(offset, 0);
+				segment.force();
+				for (int j = i + 1; j < segmentCount; j++) {
+					segmentFile(j).delete();
+					indexFile(j).delete();
+				}
+				break;
+			}
+		}
+
+		if (segments.isEmpty())
+			segments.add(mapSegment(0));
+	}
+
+	// Append data of all cities with current time
+	public void append(List<CityWeatherData> data) throws IOException {
+		append(data, System.currentTimeMillis());
+	}
+
+	// Append data of cities with given time, so a load appended in batches shares one time
+	public void append(List<CityWeatherData> data, long loadTime) throws IOException {
+		lock.writeLock().lock();
+		try {
+			// Keep time ascending even if clock moves back
+			long time = Math.max(loadTime, lastTime);
+			MappedByteBuffer segment = segments.get(segments.size() - 1);
+
+			for (CityWeatherData city : data) {
+				byte[] fields = DataSnapshot.encode(city.getName(), city.getToday(), city.getTomorrow(),
+						city.getIn2days());
+				int length = RECORD_HEADER_SIZE + fields.length;
+
+				// Move to new segment when record does not fit
+				if (writeOffset + length > SEGMENT_SIZE) {
+					segment.force();
+					segment = mapSegment(segments.size());
+					segments.add(segment);
+					writeOffset = 0;
+				}
+
+				// Write record body, end of log mark after it, and its length last
+				segment.putLong(writeOffset + 4, time);
+				ByteBuffer view = segment.duplicate();
+				view.position(writeOffset + RECORD_HEADER_SIZE);
+				view.put(fields);
+				if (writeOffset + length + 4 <= SEGMENT_SIZE)
+					segment.putInt(writeOffset + length, 0);
+				segment.putInt(writeOffset, length);
+
+				addPosition(city.getName(), (long) (segments.size() - 1) * SEGMENT_SIZE + writeOffset);
+				writeOffset += length;
+			}
+
+			segment.force();
+			lastTime = time;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Write index files of segments filled since last checkpoint, so next startup does not scan them
+	public synchronized void checkpoint() throws IOException {
+		lock.readLock().lock();
+		try {
+			// Filled segments are never written again, only the last one is appended to
+			while (indexedSegments < segments.size() - 1) {
+				writeSegmentIndex(indexedSegments);
+				indexedSegments++;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Read newest records of city with time in range (inclusive), up to maxEntries, oldest first
+	public List<Entry> read(String city, long from, long to, int maxEntries) {
+		List<Entry> entries = new ArrayList<Entry>();
+
+		lock.readLock().lock();
+		try {
+			PositionList positions = index.get(city);
+			if (positions == null)
+				return entries;
+
+			// Find records in range and read the newest of them sequentially
+			int end = search(positions, to, true);
+			int start = Math.max(search(positions, from, false), end - maxEntries);
+			for (int i = start; i < end; i++) {
+				long position = positions.positions[i];
+				entries.add(new Entry(readTime(position), readRecord(position)));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return entries;
+	}
+
+	// Binary search for first record with time after given time, or not before it if not inclusive
+	private int search(PositionList positions, long time, boolean inclusive) {
+		int low = 0;
+		int high = positions.size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			long midTime = readTime(positions.positions[mid]);
+			if (midTime < time || (inclusive && midTime == time))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	// Write names and offsets of records in filled segment i to its index file
+	private void writeSegmentIndex(int i) throws IOException {
+		ByteBuffer segment = segments.get(i);
+		List<String> names = new ArrayList<String>();
+		List<Integer> offsets = new ArrayList<Integer>();
+		int offset = 0;
+		int length;
+		while ((length = recordLength(segment, offset)) > 0) {
+			names.add(readString(segment, offset + RECORD_HEADER_SIZE));
+			offsets.add(offset);
+			offset += length;
+		}
+
+		File file = indexFile(i);
+		File tmpFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(offset); // End of records
+			out.writeLong(offsets.isEmpty() ? 0 : segment.getLong(offsets.get(offsets.size() - 1) + 4));
+			out.writeInt(names.size());
+			for (int j = 0; j < names.size(); j++) {
+				out.writeUTF(names.get(j));
+				out.writeInt(offsets.get(j));
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Restore index of segment i from its index file, return false if it has none or it is not valid
+	private boolean readSegmentIndex(int i) {
+		File file = indexFile(i);
+		if (!file.exists())
+			return false;
+
+		List<String> names = new ArrayList<String>();
+		List<Integer> offsets = new ArrayList<Integer>();
+		long time;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+					throw new IOException("History index header is not valid.");
+				int end = in.readInt();
+				time = in.readLong();
+				if (end < 0 || end > SEGMENT_SIZE)
+					throw new IOException("History index does not match segment.");
+
+				int count = in.readInt();
+				for (int j = 0; j < count; j++) {
+					names.add(in.readUTF());
+					int offset = in.readInt();
+					if (offset < 0 || offset >= end)
+						throw new IOException("History index offset is not valid.");
+					offsets.add(offset);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("History index " + i + " is not valid, scanning segment.");
+			return false;
+		}
+
+		// Add positions only when whole file has been read
+		for (int j = 0; j < names.size(); j++)
+			addPosition(names.get(j), (long) i * SEGMENT_SIZE + offsets.get(j));
+		lastTime = Math.max(lastTime, time);
+		return true;
+	}
+
+	// Check record at offset, return its length, 0 at end of log or -1 if record is not valid
+	private static int recordLength(ByteBuffer segment, int offset) {
+		if (offset + RECORD_HEADER_SIZE > SEGMENT_SIZE)
+			return 0;
+		int length = segment.getInt(offset);
+		if (length == 0)
+			return 0;
+		if (length < RECORD_HEADER_SIZE || length > SEGMENT_SIZE - offset)
+			return -1;
+
+		// Strings must fill record exactly
+		int field = offset + RECORD_HEADER_SIZE;
+		for (int i = 0; i < 4; i++) {
+			if (field + 2 > offset + length)
+				return -1;
+			field += 2 + (segment.getShort(field) & 0xFFFF);
+		}
+		return field == offset + length ? length : -1;
+	}
+
+	// Add record position to city index
+	private void addPosition(String city, long position) {
+		PositionList positions = index.get(city);
+		if (positions == null) {
+			positions = new PositionList();
+			index.put(city, positions);
+		}
+		positions.add(position);
+	}
+
+	// File of segment number i
+	private File segmentFile(int i) {
+		return new File(directory, String.format("%08d.log", i));
+	}
+
+	// Index file of segment number i
+	private File indexFile(int i) {
+		return new File(directory, String.format("%08d.idx", i));
+	}
+
+	// Map segment number i, creating it if needed
+	private MappedByteBuffer mapSegment(int i) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(i), "rw");
+		try {
+			// Mapping stays valid after file is closed
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		} finally {
+			file.close();
+		}
+	}
+
+	// Read time of record at position
+	private long readTime(long position) {
+		return segments.get((int) (position / SEGMENT_SIZE)).getLong((int) (position % SEGMENT_SIZE) + 4);
+	}
+
+	// Decode weather data of record at position
+	private CityWeatherData readRecord(long position) {
+		ByteBuffer segment = segments.get((int) (position / SEGMENT_SIZE));
+		int offset = (int) (position % SEGMENT_SIZE) + RECORD_HEADER_SIZE;
+
+		String[] fields = new String[4];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = readString(segment, offset);
+			offset += 2 + (segment.getShort(offset) & 0xFFFF);
+		}
+		return new CityWeatherData(fields[0], fields[1], fields[2], fields[3]);
+	}
+
+	// Decode length-prefixed string at offset
+	private static String readString(ByteBuffer segment, int offset) {
+		byte[] bytes = new byte[segment.getShort(offset) & 0xFFFF];
+		ByteBuffer view = segment.duplicate();
+		view.position(offset + 2);
+		view.get(bytes);
+		return new String(bytes, charset);
+	}
+
+	// Weather data of city at given time
+	public static class Entry {
+		private long time; // Time data has been loaded, in milliseconds since epoch
+		private CityWeatherData data; // Weather data
+
+		public Entry(long time, CityWeatherData data) {
+			this.time = time;
+			this.data = data;
+		}
+
+		/**
+		 * @return the time
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return the data
+		 */
+		public CityWeatherData getData() {
+			return data;
+		}
+	}
+
+	// Growable array of record positions
+	private static class PositionList {
+		private long[] positions = new long[4];
+		private int size = 0;
+
+		public void add(long position) {
+			if (size == positions.length) {
+				long[] grown = new long[size * 2];
+				System.arraycopy(positions, 0, grown, 0, size);
+				positions = grown;
+			}
+			positions[size++] = position;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * File: RateLimiter.java
+ * Lock-free per-address token buckets limiting requests to weather server
+ *
+ * Every address has two buckets, one for expensive requests and one for cheap
+ * requests. A bucket is held in a single AtomicLong as the time the bucket
+ * will be full again, so taking a token is a single compare-and-set.
+ * When the table is full, idle addresses and then least recently seen ones
+ * are evicted in batches, so new addresses are never refused and a full table
+ * is swept once per batch rather than once per new address.
+ */
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiter {
+	private static final int EVICTION_DIVISOR = 10; // Sweep of full table frees this fraction of it
+
+	private long expensiveInterval; // Nanoseconds to refill one expensive token
+	private long expensiveTolerance; // Nanoseconds worth of expensive burst
+	private long cheapInterval; // Nanoseconds to refill one cheap token
+	private long cheapTolerance; // Nanoseconds worth of cheap burst
+	private int maxAddresses; // Maximum tracked addresses
+	private long idleTimeout; // Nanoseconds before an idle address is evicted
+
+	private ConcurrentHashMap<InetAddress, AddressBuckets> buckets; // Buckets per address
+	private AtomicLong droppedExpensive = new AtomicLong(); // Expensive requests dropped
+	private AtomicLong droppedCheap = new AtomicLong(); // Cheap requests dropped
+	private AtomicLong evictedActive = new AtomicLong(); // Addresses evicted before becoming idle
+
+	// Constructor, rates are in requests per second
+	public RateLimiter(double expensiveRate, int expensiveBurst, double cheapRate, int cheapBurst,
+			int maxAddresses, long idleTimeoutMillis) {
+		if (expensiveRate <= 0 || cheapRate <= 0 || expensiveBurst < 1 || cheapBurst < 1 || maxAddresses < 1)
+			throw new IllegalArgumentException("Rate limits must be positive.");
+
+		this.expensiveInterval = (long) (TimeUnit.SECONDS.toNanos(1) / expensiveRate);
+		this.expensiveTolerance = expensiveInterval * expensiveBurst;
+		this.cheapInterval = (long) (TimeUnit.SECONDS.toNanos(1) / cheapRate);
+		this.cheapTolerance = cheapInterval * cheapBurst;
+		this.maxAddresses = maxAddresses;
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+
+		buckets = new ConcurrentHashMap<InetAddress, AddressBuckets>();
+	}
+
+	// Take a token for request from address, return false if request should be dropped
+	public boolean tryAcquire(InetAddress address, boolean expensive) {
+		long now = System.nanoTime();
+		AddressBuckets addressBuckets = buckets.get(address);
+
+		if (addressBuckets == null) {
+			// Make room for new address
+			if (buckets.size() >= maxAddresses)
+				evict(now);
+
+			AddressBuckets created = new AddressBuckets(now);
+			addressBuckets = buckets.putIfAbsent(address, created);
+			if (addressBuckets == null)
+				addressBuckets = created;
+		}
+
+		addressBuckets.lastSeen = now;
+		boolean acquired = expensive ? take(addressBuckets.expensive, now, expensiveInterval, expensiveTolerance)
+				: take(addressBuckets.cheap, now, cheapInterval, cheapTolerance);
+		if (!acquired)
+			countDrop(expensive);
+		return acquired;
+	}
+
+	// Take one token from bucket, return false if bucket is empty
+	private static boolean take(AtomicLong bucket, long now, long interval, long tolerance) {
+		while (true) {
+			long fullAt = bucket.get();
+			long next = (fullAt - now < 0 ? now : fullAt) + interval;
+			if (next - now > tolerance)
+				return false;
+			if (bucket.compareAndSet(fullAt, next))
+				return true;
+		}
+	}
+
+	// Remove addresses idle longer than timeout, and least recently seen ones until a batch is freed
+	private void evict(long now) {
+		int batch = Math.max(1, maxAddresses / EVICTION_DIVISOR);
+
+		// Find age of youngest address in batch of least recently seen ones
+		long[] ages = new long[buckets.size()];
+		int count = 0;
+		for (AddressBuckets addressBuckets : buckets.values()) {
+			if (count == ages.length)
+				break;
+			ages[count++] = now - addressBuckets.lastSeen;
+		}
+		Arrays.sort(ages, 0, count);
+
+		// All idle addresses go, active ones only if not enough are idle
+		long cutoff = count < batch ? 0 : Math.min(ages[count - batch], idleTimeout + 1);
+
+		Iterator<AddressBuckets> iterator = buckets.values().iterator();
+		while (iterator.hasNext()) {
+			long age = now - iterator.next().lastSeen;
+			if (age >= cutoff) {
+				iterator.remove();
+				if (age <= idleTimeout)
+					evictedActive.incrementAndGet();
+			}
+		}
+	}
+
+	// Count dropped request
+	private void countDrop(boolean expensive) {
+		if (expensive)
+			droppedExpensive.incrementAndGet();
+		else
+			droppedCheap.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of expensive requests dropped
+	 */
+	public long getDroppedExpensive() {
+		return droppedExpensive.get();
+	}
+
+	/**
+	 * @return the number of cheap requests dropped
+	 */
+	public long getDroppedCheap() {
+		return droppedCheap.get();
+	}
+
+	/**
+	 * @return the number of addresses evicted before becoming idle
+	 */
+	public long getEvictedActive() {
+		return evictedActive.get();
+	}
+
+	/**
+	 * @return the number of addresses currently tracked
+	 */
+	public int getTrackedAddresses() {
+		return buckets.size();
+	}
+
+	// Buckets of single address
+	private static class AddressBuckets {
+		private AtomicLong expensive; // Time expensive bucket is full
+		private AtomicLong cheap; // Time cheap bucket is full
+		private volatile long lastSeen; // Time of last request
+
+		public AddressBuckets(long now) {
+			expensive = new AtomicLong(now);
+			cheap = new AtomicLong(now);
+			lastSeen = now;
+		}
+	}
+}
@@ -0,0 +1,424 @@
+/*
+ * File: ShardedDataset.java
+ * Weather data split across shard files by city name hash, shards are loaded
+ * on first lookup and least recently used shards are evicted over memory budget
+ *
+ * Every split is written to a new generation directory (shards/N) holding
+ * index.txt (shard count, data file modification time and length, then city
+ * names in data file order) and shard files NNNNNN.txt in data file format.
+ * A dataset never sees shard files of another generation.
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ShardedDataset implements CityDataSource {
+	private static final int SHARDS_IN_BUDGET = 8; // Shards sized so this many fit in memory budget
+	private static final int HEAP_BYTES_PER_FILE_BYTE = 5; // Estimated heap bytes per data file byte
+	private static final int MAX_SHARDS = 999999; // Shard file names have 6 digits
+	private static final int MAX_OPEN_SHARDS = 256; // Shard files written at once while splitting
+	private static String indexFileName = "index.txt"; // Index file in generation directory
+	private static Charset charset = StandardCharsets.UTF_8; // Shard files encoding
+
+	private File directory; // Generation directory of shard files
+	private int shardCount; // Number of shards
+	private long sourceModified; // Modification time of data file shards were split from
+	private long sourceLength; // Length of data file shards were split from
+	private String[] names; // City names in data file order
+	private int[] sortedNames; // Indexes of names in sorted order
+	private long memoryBudget; // Bytes of loaded shards to keep
+
+	private LinkedHashMap<Integer, Shard> cache; // Loaded shards in access order
+	private long cachedBytes = 0; // Estimated bytes of loaded shards
+	private AtomicLong hits = new AtomicLong(); // Lookups served by loaded shard
+	private AtomicLong misses = new AtomicLong(); // Lookups that loaded a shard
+	private AtomicLong evictions = new AtomicLong(); // Shards evicted over budget
+
+	// Constructor, reads only the names index of generation directory
+	public ShardedDataset(File directory, long memoryBudget) throws IOException {
+		this.directory = directory;
+		this.memoryBudget = memoryBudget;
+		cache = new LinkedHashMap<Integer, Shard>(16, 0.75f, true);
+
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(new File(directory, indexFileName)), charset));
+		try {
+			try {
+				shardCount = Integer.parseInt(reader.readLine());
+				sourceModified = Long.parseLong(reader.readLine());
+				sourceLength = Long.parseLong(reader.readLine());
+			} catch (NumberFormatException e) {
+				throw new IOException("Shard index is not formatted correctly.");
+			}
+			if (shardCount < 1)
+				throw new IOException("Shard index is not formatted correctly.");
+
+			List<String> nameList = new ArrayList<String>();
+			String name;
+			while ((name = reader.readLine()) != null)
+				nameList.add(name);
+			names = nameList.toArray(new String[nameList.size()]);
+		} finally {
+			reader.close();
+		}
+
+		// Sort name indexes for binary search
+		Integer[] sorted = new Integer[names.length];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = i;
+		Arrays.sort(sorted, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				return names[a].compareTo(names[b]);
+			}
+		});
+		sortedNames = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i++)
+			sortedNames[i] = sorted[i];
+	}
+
+	// Split data file into a new generation directory, reading one city at a time, and return it.
+	// Shard count is chosen so several shards fit in memory budget.
+	public static File split(File dataFile, File shardDir, long memoryBudget) throws IOException {
+		long sourceModified = dataFile.lastModified();
+		long sourceLength = dataFile.length();
+		long estimatedBytes = sourceLength * HEAP_BYTES_PER_FILE_BYTE;
+		int shardCount = (int) Math.max(1,
+				Math.min(MAX_SHARDS, (estimatedBytes * SHARDS_IN_BUDGET + memoryBudget - 1) / memoryBudget));
+
+		File generation = generationDirectory(shardDir, latestGeneration(shardDir) + 1);
+		if (!generation.mkdirs())
+			throw new IOException("Cannot create shards directory.");
+
+		boolean success = false;
+		try {
+			// Write shards in passes, so open files are bounded whatever the shard count
+			for (int first = 0; first < shardCount; first += MAX_OPEN_SHARDS) {
+				int last = Math.min(shardCount, first + MAX_OPEN_SHARDS);
+				splitPass(dataFile, generation, shardCount, first, last, first == 0, sourceModified, sourceLength);
+			}
+
+			// Index last, so a generation without it is never used
+			Files.move(tmpFile(new File(generation, indexFileName)).toPath(),
+					new File(generation, indexFileName).toPath(), StandardCopyOption.ATOMIC_MOVE);
+			success = true;
+		} finally {
+			if (!success)
+				deleteDirectory(generation);
+		}
+		return generation;
+	}
+
+	// Write shards first to last-1 from data file, and index on first pass
+	private static void splitPass(File dataFile, File generation, int shardCount, int first, int last,
+			boolean writeIndex, long sourceModified, long sourceLength) throws IOException {
+		Writer[] shards = new Writer[last - first];
+		Writer index = null;
+		Scanner scanner = null;
+		try {
+			for (int i = first; i < last; i++)
+				shards[i - first] = openWriter(shardFile(generation, i));
+			if (writeIndex) {
+				index = openWriter(tmpFile(new File(generation, indexFileName)));
+				index.write(shardCount + "\n" + sourceModified + "\n" + sourceLength + "\n");
+			}
+
+			scanner = new Scanner(dataFile);
+			while (scanner.hasNext()) {
+				CityWeatherData city = new CityWeatherData(scanner.nextLine(), scanner.nextLine(),
+						scanner.nextLine(), scanner.nextLine());
+				int shard = shardOf(city.getName(), shardCount);
+				if (shard >= first && shard < last)
+					shards[shard - first].write(String.format("%s\n%s\n%s\n%s\n", city.getName(), city.getToday(),
+							city.getTomorrow(), city.getIn2days()));
+				if (index != null)
+					index.write(city.getName() + "\n");
+			}
+		} catch (NoSuchElementException e) {
+			throw new IOException("Data file is not formatted correctly.");
+		} finally {
+			if (scanner != null)
+				scanner.close();
+			for (Writer shard : shards) {
+				if (shard != null)
+					shard.close();
+			}
+			if (index != null)
+				index.close();
+		}
+	}
+
+	// Get latest complete generation directory, null if none
+	public static File latest(File shardDir) {
+		long latest = -1;
+		File[] files = shardDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (new File(file, indexFileName).exists())
+					latest = Math.max(latest, generationOf(file));
+			}
+		}
+		return latest < 0 ? null : generationDirectory(shardDir, latest);
+	}
+
+	// Delete all generation directories but given ones, files still in use are left for next time
+	public static void deleteOthers(File shardDir, File... keep) {
+		File[] files = shardDir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (generationOf(file) >= 0 && !Arrays.asList(keep).contains(file))
+				deleteDirectory(file);
+		}
+	}
+
+	// Append cities of all shards to history with one load time, reading one shard at a time
+	public void appendHistory(HistoryLog history) throws IOException {
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < shardCount; i++)
+			history.append(readShard(i), time);
+	}
+
+	// Check if shards were split from data file as it is now (always true if data file is missing)
+	public boolean isUpToDate(File dataFile) {
+		return !dataFile.exists() || (dataFile.lastModified() == sourceModified && dataFile.length() == sourceLength);
+	}
+
+	/**
+	 * @return the generation directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	@Override
+	public int size() {
+		return names.length;
+	}
+
+	@Override
+	public String getName(int i) {
+		return names[i];
+	}
+
+	// Look for city by name, loading its shard if needed, null if not found
+	@Override
+	public CityWeatherData find(String city) throws IOException {
+		if (!contains(city))
+			return null; // Unknown city never loads a shard
+
+		return getShard(shardOf(city, shardCount)).cities.get(city);
+	}
+
+	/**
+	 * @return the number of lookups served by loaded shard
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that loaded a shard
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of shards evicted over memory budget
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the estimated bytes of loaded shards
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	// Check if city is in names index
+	private boolean contains(String city) {
+		int low = 0;
+		int high = sortedNames.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int diff = names[sortedNames[mid]].compareTo(city);
+			if (diff == 0)
+				return true;
+			else if (diff < 0)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return false;
+	}
+
+	// Get shard from cache, loading it on miss
+	private Shard getShard(int number) throws IOException {
+		synchronized (this) {
+			Shard shard = cache.get(number);
+			if (shard != null) {
+				hits.incrementAndGet();
+				return shard;
+			}
+		}
+
+		// Load outside lock so hits on other shards are not blocked by disk
+		misses.incrementAndGet();
+		Shard loaded = loadShard(number);
+
+		synchronized (this) {
+			Shard shard = cache.get(number);
+			if (shard != null)
+				return shard; // Loaded by another thread meanwhile
+
+			cache.put(number, loaded);
+			cachedBytes += loaded.bytes;
+
+			// Evict least recently used shards, keeping the one just loaded
+			Iterator<Shard> iterator = cache.values().iterator();
+			while (cachedBytes > memoryBudget && cache.size() > 1) {
+				cachedBytes -= iterator.next().bytes;
+				iterator.remove();
+				evictions.incrementAndGet();
+			}
+			return loaded;
+		}
+	}
+
+	// Read shard file into memory
+	private Shard loadShard(int number) throws IOException {
+		Shard shard = new Shard();
+		for (CityWeatherData city : readShard(number)) {
+			// First city with a name wins, as in data file lookups
+			if (!shard.cities.containsKey(city.getName())) {
+				shard.cities.put(city.getName(), city);
+				shard.bytes += estimateSize(city.getName(), city.getToday(), city.getTomorrow(), city.getIn2days());
+			}
+		}
+		return shard;
+	}
+
+	// Read all cities of shard file in data file order
+	private List<CityWeatherData> readShard(int number) throws IOException {
+		List<CityWeatherData> cities = new ArrayList<CityWeatherData>();
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(shardFile(directory, number)), charset));
+		try {
+			String name;
+			while ((name = reader.readLine()) != null) {
+				String today = reader.readLine();
+				String tomorrow = reader.readLine();
+				String in2days = reader.readLine();
+				if (in2days == null)
+					throw new IOException("Shard file is not formatted correctly.");
+				cities.add(new CityWeatherData(name, today, tomorrow, in2days));
+			}
+		} finally {
+			reader.close();
+		}
+		return cities;
+	}
+
+	// Estimate heap bytes of city data: strings, data object and map entry
+	private static long estimateSize(String... fields) {
+		long size = 96;
+		for (String field : fields)
+			size += 40 + 2L * field.length();
+		return size;
+	}
+
+	// Get shard number of city
+	private static int shardOf(String city, int shardCount) {
+		return Math.floorMod(city.hashCode(), shardCount);
+	}
+
+	// Get file of shard number i
+	private static File shardFile(File directory, int i) {
+		return new File(directory, String.format("%06d.txt", i));
+	}
+
+	// Get temporary file for file being written
+	private static File tmpFile(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	// Get highest generation number in shards directory, -1 if none
+	private static long latestGeneration(File shardDir) {
+		long latest = -1;
+		File[] files = shardDir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				latest = Math.max(latest, generationOf(file));
+		}
+		return latest;
+	}
+
+	// Get generation number of directory, -1 if it is not a generation directory
+	private static long generationOf(File file) {
+		if (!file.isDirectory())
+			return -1;
+		try {
+			return Long.parseLong(file.getName());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Get directory of generation number
+	private static File generationDirectory(File shardDir, long generation) {
+		return new File(shardDir, Long.toString(generation));
+	}
+
+	// Delete directory and files in it, ignoring files that cannot be deleted
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		directory.delete();
+	}
+
+	// Open buffered writer of file
+	private static Writer openWriter(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), charset));
+	}
+
+	// Loaded shard
+	private static class Shard {
+		private Map<String, CityWeatherData> cities = new HashMap<String, CityWeatherData>(); // Cities by name
+		private long bytes = 64; // Estimated heap bytes
+	}
+}
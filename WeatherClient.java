@@ -15,8 +15,12 @@ import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -24,15 +28,22 @@ import java.util.concurrent.locks.ReentrantLock;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JFrame;
-import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 
 public class WeatherClient extends JFrame {
 	private static long msInDay = 86400000;		// Milliseconds in day
@@ -44,12 +55,13 @@ public class WeatherClient extends JFrame {
 	private JButton in2daysButton;
 	private JMenuBar menuBar;
 	private JMenu serverMenu;
-	private JMenu citiesMenu;
+	private JTextField citySearchField;	// Filter for cities list
+	private JList<String> cityList;		// Cities list, renders visible rows only
+	private CityListModel cityListModel;	// Filtered cities shown in cities list
 	private JTextArea displayArea;	// Main display area
 	private Color defaultButtonColor;	// Color of unpressed button
 	private static Color pressedButtonColor = Color.WHITE; // Color of pressed button
 	private ServerMenuItemListener menuListener;		// Menu items listener for Server menu
-	private CityMenuItemListener cityMenuItemListener;	// Menu items listener for City menu
 
 	private InetSocketAddress serverSocketAddress;	// Socket address of server
 	private String serverAddress = "localhost";		// default address is localhost
@@ -59,6 +71,8 @@ public class WeatherClient extends JFrame {
 	private String[] cities = null; // List of cities available
 	private Lock citiesListLock = new ReentrantLock();	// Lock for cities variable
 	private CityWeatherData chosenCity;	// Hold chosen city data
+	private String chosenCityName;	// Name of city selected in list, accessed on EDT only
+	private int filterGeneration = 0;	// Latest cities filter request, accessed on EDT only
 	private CountDownLatch waitForCities; // Manage waiting for server to send city data
 	private CountDownLatch waitForServerUpdate; // Manage waiting for server to update his data
 	private Thread bgThread;	// Background thread 
@@ -69,7 +83,6 @@ public class WeatherClient extends JFrame {
 		// Menu creation
 		menuBar = new JMenuBar();
 		menuListener = new ServerMenuItemListener();
-		cityMenuItemListener = new CityMenuItemListener();
 
 		createMenu(); // Create GUI menu
 		setJMenuBar(menuBar);
@@ -140,6 +153,21 @@ public class WeatherClient extends JFrame {
 		// Add northPanel (Days buttons) to north
 		add(northPanel, BorderLayout.NORTH);
 
+		// Create cities list with search field above it
+		JPanel westPanel = new JPanel(new BorderLayout());
+		citySearchField = new JTextField();
+		citySearchField.setToolTipText("Search city");
+		citySearchField.getDocument().addDocumentListener(new CitySearchListener());
+		westPanel.add(citySearchField, BorderLayout.NORTH);
+
+		cityListModel = new CityListModel();
+		cityList = new JList<String>(cityListModel);
+		cityList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		cityList.setPrototypeCellValue("XXXXXXXXXXXXXXXX"); // Fixed cell size, no need to measure every city
+		cityList.addListSelectionListener(new CityListSelectionListener());
+		westPanel.add(new JScrollPane(cityList), BorderLayout.CENTER);
+		add(westPanel, BorderLayout.WEST);
+
 		// Create display area
 		displayArea = new JTextArea("Select city");
 		displayArea.setEditable(false);
@@ -149,7 +177,7 @@ public class WeatherClient extends JFrame {
 		// Disable buttons until have a connection with server
 		setButtonsEnabled(false);
 
-		setSize(500, 200);
+		setSize(650, 250);
 		setVisible(true);
 	}
 
@@ -188,7 +216,7 @@ public class WeatherClient extends JFrame {
 				numOfTry++;
 			}
 			if (numOfTry < 5)
-				updateCitiesMenu();
+				updateCitiesList();
 			else
 				return false;
 
@@ -227,7 +255,7 @@ public class WeatherClient extends JFrame {
 					citiesListLock.lock();
 					try {
 						cities = list.split(","); // Insert to cities list
-						updateCitiesMenu();
+						updateCitiesList();
 						displayText("Data Updated. Choose city.");
 						updateButtons(null);
 					} finally {
@@ -282,7 +310,7 @@ public class WeatherClient extends JFrame {
 		});
 	}
 
-	// Initiate menu bar with no cities (Cities are being updated in updateCitiesMenu) 
+	// Initiate menu bar
 	public void createMenu() {
 		SwingUtilities.invokeLater(new Runnable() {
 
@@ -306,42 +334,68 @@ public class WeatherClient extends JFrame {
 				refreshDataItem.setActionCommand("Refresh Data");
 				refreshDataItem.addActionListener(menuListener);
 				serverMenu.add(refreshDataItem);
-
-				citiesMenu = new JMenu("City");
-				citiesMenu.setMnemonic(KeyEvent.VK_C);
-				menuBar.add(citiesMenu);
-
-				JLabel noItems = new JLabel("No items to show");
-				citiesMenu.add(noItems);
 			}
 		});
 	}
 
-	// Update City menu with cities list
-	public void updateCitiesMenu() {
+	// Update cities list with received cities, clearing selection so any city can be requested again
+	public void updateCitiesList() {
 		SwingUtilities.invokeLater(new Runnable() {
 
 			@Override
 			public void run() {
+				chosenCityName = null;
+				cityList.clearSelection();
+				filterCities();
+			}
+		});
+	}
+
+	// Filter cities by search text in background and apply differences to list (call on EDT)
+	private void filterCities() {
+		String filter = citySearchField.getText().trim().toLowerCase();
+		int generation = ++filterGeneration;
+
+		new SwingWorker<List<String>, Void>() {
+			@Override
+			protected List<String> doInBackground() throws Exception {
+				String[] allCities;
 				citiesListLock.lock();
 				try {
-					if (cities != null) {
-						citiesMenu.removeAll(); // Remove old data
-						for (String city : cities) {
-							JMenuItem cityItem = new JMenuItem(city);
-							cityItem.setActionCommand(city);
-							cityItem.addActionListener(cityMenuItemListener);
-							citiesMenu.add(cityItem);
-						}
-					} else {
-						JLabel noItems = new JLabel("No items to show");
-						citiesMenu.add(noItems);
-					}
+					allCities = cities; // Array is replaced on update, never modified
 				} finally {
 					citiesListLock.unlock();
 				}
+
+				List<String> filtered = new ArrayList<String>();
+				if (allCities != null) {
+					for (String city : allCities) {
+						if (!city.isEmpty() && city.toLowerCase().contains(filter))
+							filtered.add(city);
+					}
+				}
+				return filtered;
 			}
-		});
+
+			@Override
+			protected void done() {
+				// Ignore result if a newer filter has been requested
+				if (generation != filterGeneration)
+					return;
+				try {
+					cityListModel.setCities(get());
+
+					// Select chosen city again if list has been replaced under it
+					if (chosenCityName != null && !chosenCityName.equals(cityList.getSelectedValue())) {
+						int index = cityListModel.indexOf(chosenCityName);
+						if (index >= 0)
+							cityList.setSelectedIndex(index);
+					}
+				} catch (InterruptedException | ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+		}.execute();
 	}
 
 	// Change server address and reload data from new server
@@ -388,7 +442,7 @@ public class WeatherClient extends JFrame {
 		}.execute();
 	}
 
-	// Set GUI buttons as enabled/disabled and removes city list if neede 
+	// Set GUI buttons as enabled/disabled and removes city list if needed (call on EDT)
 	private void setGUIEnabled(boolean enabled) {
 		todayButton.setEnabled(enabled);
 		tomorrowButton.setEnabled(enabled);
@@ -396,8 +450,9 @@ public class WeatherClient extends JFrame {
 
 		if (!enabled) {
 			// Remove cities list if old connection is not relevant
-			citiesMenu.removeAll();
-			citiesMenu.add(new JLabel("No items to show"));
+			filterGeneration++; // Discard filters still running
+			chosenCityName = null;
+			cityListModel.setCities(Collections.<String>emptyList());
 		}
 	}
 	
@@ -427,12 +482,36 @@ public class WeatherClient extends JFrame {
 		}
 	}
 
-	// Menu items listener for City menu
-	class CityMenuItemListener implements ActionListener {
+	// Selection listener for cities list
+	class CityListSelectionListener implements ListSelectionListener {
 
 		@Override
-		public void actionPerformed(ActionEvent e) {
-			askCityData(e.getActionCommand());
+		public void valueChanged(ListSelectionEvent e) {
+			// Ask only when user picked another city, not when list shifted around selection
+			String city = cityList.getSelectedValue();
+			if (!e.getValueIsAdjusting() && city != null && !city.equals(chosenCityName)) {
+				chosenCityName = city;
+				askCityData(city);
+			}
+		}
+	}
+
+	// Search field listener, filters cities list on every change
+	class CitySearchListener implements DocumentListener {
+
+		@Override
+		public void insertUpdate(DocumentEvent e) {
+			filterCities();
+		}
+
+		@Override
+		public void removeUpdate(DocumentEvent e) {
+			filterCities();
+		}
+
+		@Override
+		public void changedUpdate(DocumentEvent e) {
+			filterCities();
 		}
 	}
 
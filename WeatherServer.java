@@ -21,17 +21,41 @@ import java.util.concurrent.Executors;
 
 public class WeatherServer {
 	private static String dataFilePath = "data.txt"; // Data file location
+	private static String snapshotFilePath = "data.snap"; // Binary snapshot location, written as data.snap.N
+	private static String historyDirPath = "history"; // History log location
+	private static String shardDirPath = "shards"; // Shards location, data is sharded only if it exists
+	private static long shardMemoryBudget = 64 * 1024 * 1024; // Bytes of loaded shards kept in memory
+	private static int maxHistoryEntries = 1000; // Maximum entries read for history request
+	private static int maxPacketSize = 65507; // Maximum bytes in sent packet
 	private static int serverPort = 12345; // Server port
+	private static double expensiveRate = 1; // Refresh/cities requests per second per address
+	private static int expensiveBurst = 5; // Refresh/cities requests allowed in a burst
+	private static double cheapRate = 20; // City requests per second per address
+	private static int cheapBurst = 40; // City requests allowed in a burst
+	private static int maxAddresses = 10000; // Maximum addresses tracked by rate limiter
+	private static long idleTimeout = 60000; // Milliseconds before idle address is forgotten
 
-	private List<CityWeatherData> data; // Array holds data
+	private List<CityWeatherData> data; // Array holds data when no other source is available
+	private volatile CityDataSource source; // Snapshot or shards serving lookups
+	private long dataModified = -1; // Modification time of data file parsed into list
+	private long dataLength = -1; // Length of data file parsed into list
+	private HistoryLog history; // Log of all loaded data, null if not available
 	private DatagramSocket socket; // Socket for connections
 	private ExecutorService executor; // Manages threads
+	private RateLimiter rateLimiter; // Limits requests per source address
 	private int reqCount = 0; // Requests counter
 
 	public WeatherServer() {
 		// Create thread-safe list and read data into it
 		data = Collections.synchronizedList(new ArrayList<CityWeatherData>());
-		readData();
+
+		// Open history log before loading so loaded data is recorded
+		try {
+			history = new HistoryLog(new File(historyDirPath));
+		} catch (IOException e) {
+			System.out.println("Error while opening history log.");
+		}
+		loadData(false);
 
 		// Initialize socket
 		try {
@@ -44,11 +68,148 @@ public class WeatherServer {
 		// Setup executor
 		executor = Executors.newCachedThreadPool();
 
+		// Setup rate limiter
+		rateLimiter = new RateLimiter(expensiveRate, expensiveBurst, cheapRate, cheapBurst, maxAddresses,
+				idleTimeout);
+
 		System.out.println("Server started");
 	}
 
-	// Reload weather data from file
-	private void readData() {
+	// Load weather data, reparsing data file only when it changed since snapshot was written or when forced
+	private synchronized void loadData(boolean reparse) {
+		File dataFile = new File(dataFilePath);
+		File snapshotBase = new File(snapshotFilePath);
+		File shardDir = new File(shardDirPath);
+
+		// Serve from shards if sharding is enabled
+		if (shardDir.isDirectory()) {
+			loadShards(dataFile, shardDir, reparse);
+			return;
+		}
+
+		// Take data file stamp before parsing, so changes made meanwhile are parsed next time
+		long modified = dataFile.lastModified();
+		long length = dataFile.length();
+
+		if (!reparse) {
+			// Keep serving current data if data file has not changed
+			CityDataSource currentSource = source;
+			if (currentSource instanceof DataSnapshot && ((DataSnapshot) currentSource).isUpToDate(dataFile))
+				return;
+			if (currentSource == null && modified == dataModified && length == dataLength)
+				return;
+
+			// Map latest snapshot if it is up to date
+			File snapshotFile = DataSnapshot.latest(snapshotBase);
+			if (snapshotFile != null) {
+				try {
+					DataSnapshot snapshot = DataSnapshot.open(snapshotFile);
+					if (snapshot.isUpToDate(dataFile)) {
+						source = snapshot;
+						data.clear();
+						System.out.println("Data have been mapped from snapshot");
+						return;
+					}
+				} catch (IOException e) {
+					System.out.println("Snapshot file is not valid.");
+				}
+			}
+		}
+
+		// Parse data file, record it in history and write a new snapshot from it
+		if (readData()) {
+			dataModified = modified;
+			dataLength = length;
+
+			if (history != null) {
+				try {
+					history.append(data);
+					history.checkpoint();
+					System.out.println("Data have been appended to history");
+				} catch (IOException e) {
+					System.out.println("Error while writing history log.");
+				}
+			}
+
+			try {
+				File snapshotFile = DataSnapshot.next(snapshotBase);
+				DataSnapshot.write(data, snapshotFile, modified, length);
+				source = DataSnapshot.open(snapshotFile);
+				data.clear();
+				DataSnapshot.deleteOthers(snapshotBase, snapshotFile);
+				System.out.println("Snapshot has been written");
+			} catch (IOException e) {
+				// Keep serving from parsed data
+				source = null;
+				System.out.println("Error while writing snapshot file.");
+			}
+		}
+	}
+
+	// Load shards index, splitting data file into a new shards generation only when it changed or when forced
+	private void loadShards(File dataFile, File shardDir, boolean reparse) {
+		CityDataSource currentSource = source;
+		ShardedDataset current = (currentSource instanceof ShardedDataset) ? (ShardedDataset) currentSource : null;
+		ShardedDataset shards = null;
+
+		// Log cache counters of data being served, so cache can be sized
+		if (current != null)
+			System.out.println("Shards cache: " + current.getHits() + " hits, " + current.getMisses() + " misses, "
+					+ current.getEvictions() + " evictions, " + current.getCachedBytes() + " bytes");
+
+		if (!reparse) {
+			// Keep serving current shards if data file has not changed
+			if (current != null && current.isUpToDate(dataFile))
+				return;
+
+			// Read latest shards index if it is up to date
+			File generation = ShardedDataset.latest(shardDir);
+			if (generation != null) {
+				try {
+					shards = new ShardedDataset(generation, shardMemoryBudget);
+					if (!shards.isUpToDate(dataFile))
+						shards = null;
+				} catch (IOException e) {
+					System.out.println("Shards index is not valid.");
+				}
+			}
+		}
+
+		// Split data file, then record the shards in history
+		if (shards == null) {
+			try {
+				File generation = ShardedDataset.split(dataFile, shardDir, shardMemoryBudget);
+				shards = new ShardedDataset(generation, shardMemoryBudget);
+				System.out.println("Data file has been split into " + shards.getShardCount() + " shards");
+			} catch (IOException e) {
+				System.out.println("Error while splitting data file into shards.");
+				return;
+			}
+
+			if (history != null) {
+				try {
+					shards.appendHistory(history);
+					history.checkpoint();
+					System.out.println("Data have been appended to history");
+				} catch (IOException e) {
+					System.out.println("Error while writing history log.");
+				}
+			}
+		}
+
+		// Switch to new shards, keeping previous generation for lookups still running on it
+		source = shards;
+		data.clear();
+		if (current != null)
+			ShardedDataset.deleteOthers(shardDir, shards.getDirectory(), current.getDirectory());
+		else
+			ShardedDataset.deleteOthers(shardDir, shards.getDirectory());
+		System.out.println("Shards index has been read");
+	}
+
+	// Reload weather data from file, return true on success
+	private boolean readData() {
+		boolean success = false;
 		Scanner scanner = null;
 		try {
 			scanner = new Scanner(new File(dataFilePath));
@@ -58,6 +219,7 @@ public class WeatherServer {
 				data.add(new CityWeatherData(scanner.nextLine(), scanner.nextLine(), scanner.nextLine(),
 						scanner.nextLine()));
 			}
+			success = true;
 
 		} catch (IOException e) {
 			System.out.println("Error while reading data file.");
@@ -69,6 +231,7 @@ public class WeatherServer {
 			scanner.close();
 			System.out.println("Data have been read from file");
 		}
+		return success;
 	}
 
 	// Wait for incoming requests and take care for them
@@ -81,6 +244,19 @@ public class WeatherServer {
 				DatagramPacket receivePacket = new DatagramPacket(buf, buf.length);
 				socket.receive(receivePacket);
 
+				// Drop requests over sender's limit before creating any task
+				String request = (new String(buf)).trim();
+				boolean expensive = request.equals("REFRESH-DATA") || request.equals("GET-CITIES")
+						|| request.startsWith("HISTORY");
+				if (!rateLimiter.tryAcquire(receivePacket.getAddress(), expensive)) {
+					long dropped = rateLimiter.getDroppedExpensive() + rateLimiter.getDroppedCheap();
+					if (dropped % 100 == 1)
+						System.out.println("Dropped " + dropped + " requests over rate limit, "
+								+ rateLimiter.getTrackedAddresses() + " addresses tracked, "
+								+ rateLimiter.getEvictedActive() + " evicted while active");
+					continue;
+				}
+
 				System.out.println("Received request (" + reqCount + "): " + (new String(buf)).trim() + "\" from "
 						+ receivePacket.getAddress());
 
@@ -90,7 +266,7 @@ public class WeatherServer {
 
 						@Override
 						public void run() {
-							readData();
+							loadData(false);
 
 							// Inform client that data has been updated
 							String toSend = "DATA-REFRESHED";
@@ -126,6 +302,16 @@ public class WeatherServer {
 							System.out.println("Request " + reqCount + " has been completed");
 						}
 					});
+				} else if (request.startsWith("HISTORY")) {
+					// Received request to get city history over time range
+					executor.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							if (sendHistory(request.substring(7), receivePacket.getAddress(), receivePacket.getPort()))
+								System.out.println("Request " + reqCount + " has been completed");
+						}
+					});
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -136,11 +322,27 @@ public class WeatherServer {
 	// Send data about available cities
 	protected void sendCities(InetAddress address, int port) {
 		String cities = "CITIES:"; // Holds string to send
+		CityDataSource currentSource = source;
 
 		// Add all cities to string to send
-		Iterator<CityWeatherData> iterator = data.iterator();
-		while (iterator.hasNext()) {
-			cities += iterator.next().getName() + ",";
+		if (currentSource != null) {
+			try {
+				for (int i = 0; i < currentSource.size(); i++) {
+					cities += currentSource.getName(i) + ",";
+				}
+			} catch (IOException e) {
+				// Source is corrupt, reparse data file and send list from it
+				System.out.println("Data source is not valid, reading data file.");
+				loadData(true);
+				if (source != currentSource)
+					sendCities(address, port);
+				return;
+			}
+		} else {
+			Iterator<CityWeatherData> iterator = data.iterator();
+			while (iterator.hasNext()) {
+				cities += iterator.next().getName() + ",";
+			}
 		}
 
 		// Create packet and send
@@ -157,13 +359,27 @@ public class WeatherServer {
 	protected boolean sendData(String city, InetAddress address, int port) {
 		CityWeatherData cityData = null; // Holds found city
 		boolean cityNotFound = true; // false if city has been found
+		CityDataSource currentSource = source;
 
-		// Look for city in list
-		Iterator<CityWeatherData> iterator = data.iterator();
-		while (iterator.hasNext() && cityNotFound) {
-			cityData = iterator.next();
-			if (cityData.getName().equals(city)) {
-				cityNotFound = false;
+		if (currentSource != null) {
+			// Look for city in snapshot or shards index
+			try {
+				cityData = currentSource.find(city);
+			} catch (IOException e) {
+				// Source is corrupt, reparse data file and look again
+				System.out.println("Data source is not valid, reading data file.");
+				loadData(true);
+				return source != currentSource && sendData(city, address, port);
+			}
+			cityNotFound = (cityData == null);
+		} else {
+			// Look for city in list
+			Iterator<CityWeatherData> iterator = data.iterator();
+			while (iterator.hasNext() && cityNotFound) {
+				cityData = iterator.next();
+				if (cityData.getName().equals(city)) {
+					cityNotFound = false;
+				}
 			}
 		}
 
@@ -182,4 +398,67 @@ public class WeatherServer {
 		return false;
 	}
 
+	// Send weather history of city, request is "<city>[;from[;to]]" in milliseconds since epoch.
+	// Reply is "HISTORY:" followed by line per entry of time and weather semi-colon separated, holding
+	// the newest entries in range, oldest first. Header is "HISTORY-PARTIAL:" if older entries in range
+	// were left out to fit packet, and reply is "HISTORY-ERROR:<reason>" if request cannot be served.
+	protected boolean sendHistory(String request, InetAddress address, int port) {
+		String[] args = request.split(";");
+		long from = Long.MIN_VALUE; // Range start
+		long to = Long.MAX_VALUE; // Range end
+		String toSend = null; // Error reply, if any
+
+		try {
+			if (args.length > 1)
+				from = Long.parseLong(args[1].trim());
+			if (args.length > 2)
+				to = Long.parseLong(args[2].trim());
+		} catch (NumberFormatException e) {
+			System.out.println("History request is not formatted correctly.");
+			toSend = "HISTORY-ERROR:Time range is not formatted correctly.";
+		}
+		if (toSend == null && history == null)
+			toSend = "HISTORY-ERROR:History is not available.";
+
+		if (toSend == null) {
+			// Read one entry more than allowed to know if older entries were left out
+			List<HistoryLog.Entry> entries = history.read(args[0].trim(), from, to, maxHistoryEntries + 1);
+			boolean partial = entries.size() > maxHistoryEntries;
+			if (partial)
+				entries = entries.subList(1, entries.size());
+
+			// Add lines from newest while they fit in packet
+			int size = "HISTORY-PARTIAL:".getBytes().length;
+			int first = entries.size(); // Oldest entry that fits
+			List<String> lines = new ArrayList<String>();
+			while (first > 0) {
+				HistoryLog.Entry entry = entries.get(first - 1);
+				CityWeatherData cityData = entry.getData();
+				String line = String.format("%d;%s;%s;%s\n", entry.getTime(), cityData.getToday(),
+						cityData.getTomorrow(), cityData.getIn2days());
+				size += line.getBytes().length;
+				if (size > maxPacketSize)
+					break;
+				lines.add(line);
+				first--;
+			}
+			partial = partial || first > 0;
+
+			StringBuilder reply = new StringBuilder(partial ? "HISTORY-PARTIAL:" : "HISTORY:");
+			for (int i = lines.size() - 1; i >= 0; i--)
+				reply.append(lines.get(i));
+			toSend = reply.toString();
+		}
+
+		byte[] bytes = toSend.getBytes();
+		DatagramPacket sendPacket = new DatagramPacket(bytes, bytes.length, address, port);
+		try {
+			socket.send(sendPacket);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
 }